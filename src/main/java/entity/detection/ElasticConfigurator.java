@@ -4,38 +4,90 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.terms.Terms;
-import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.ReceiveTimeoutTransportException;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
+@Slf4j
 public class ElasticConfigurator {
     private Config config;
     private PreBuiltTransportClient client;
+    private Transport transport;
+    private CircuitBreaker breaker;
+    private ElasticSpool spool;
+    private ScheduledExecutorService spoolDrainer;
+    private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
 
     private final static String INDEX_NAME = "news";
 
+    public final static String AUTHOR_FIELD = "author.keyword";
+    public final static String ENTITY_FIELD = "entities.keyword";
+
+    private final static String COMPOSITE_NAME = "composite_keys";
+    private final static int COMPOSITE_PAGE_SIZE = 1000;
+    private final static int MAX_CACHED_AGGREGATIONS = 256;
+    private final static long DEFAULT_AGGREGATION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private final static long DEFAULT_REQUEST_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private final static int DEFAULT_BREAKER_FAILURES = 5;
+    private final static long DEFAULT_BREAKER_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private final static long DEFAULT_DRAIN_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * The requests this class sends to the cluster. {@link #initialize(Config)} uses the transport
+     * client; load tests plug in a stand-in so timeouts, the breaker and the spool run without one.
+     */
+    public interface Transport {
+        ActionFuture<IndexResponse> index(IndexRequest request);
+
+        ActionFuture<SearchResponse> search(SearchRequest request);
+    }
+
+    private final Map<String, CachedAggregation> aggregationCache = new ConcurrentHashMap<>();
+    private long aggregationTtlMillis = DEFAULT_AGGREGATION_TTL_MILLIS;
 
     public static class OneNews {
         private String _header;
         private String _author;
         private String _text;
         private String _URI;
+        private List<String> _entities;
 
         public String getHeader() {
             return _header;
@@ -53,6 +105,10 @@ public class ElasticConfigurator {
             return _URI;
         }
 
+        public List<String> getEntities() {
+            return _entities;
+        }
+
         public void setHeader(String header) {
             this._header = header;
         }
@@ -69,6 +125,45 @@ public class ElasticConfigurator {
             this._URI = URI;
         }
 
+        public void setEntities(List<String> entities) {
+            this._entities = entities;
+        }
+
+    }
+
+    /**
+     * One composite bucket: the value of every requested field and the number of matching docs.
+     */
+    public static class AggregationBucket {
+        private final Map<String, Object> _key;
+        private final long _docCount;
+
+        public AggregationBucket(Map<String, Object> key, long docCount) {
+            this._key = key;
+            this._docCount = docCount;
+        }
+
+        public Map<String, Object> getKey() {
+            return _key;
+        }
+
+        public Object getKey(String field) {
+            return _key.get(field);
+        }
+
+        public long getDocCount() {
+            return _docCount;
+        }
+    }
+
+    private static class CachedAggregation {
+        private final List<AggregationBucket> buckets;
+        private final long expiresAt;
+
+        private CachedAggregation(List<AggregationBucket> buckets, long expiresAt) {
+            this.buckets = buckets;
+            this.expiresAt = expiresAt;
+        }
     }
 
     private PreBuiltTransportClient createClient() throws UnknownHostException {
@@ -86,11 +181,201 @@ public class ElasticConfigurator {
 
     //Fixme: unsafe! check for existing client or close app!
     public void initialize(Config conf) {
+        initialize(conf, null);
+    }
+
+    /**
+     * Same as {@link #initialize(Config)}, but sends requests through {@code standIn} instead of
+     * connecting to {@code es.host} when it is not null.
+     */
+    public void initialize(Config conf, Transport standIn) {
         config = conf;
+        if (conf.hasPath("aggregation-cache-ttl")) {
+            aggregationTtlMillis = conf.getDuration("aggregation-cache-ttl", TimeUnit.MILLISECONDS);
+        }
+        if (conf.hasPath("request-timeout")) {
+            requestTimeoutMillis = conf.getDuration("request-timeout", TimeUnit.MILLISECONDS);
+        }
+        breaker = new CircuitBreaker("elasticsearch",
+                conf.hasPath("breaker.failure-threshold")
+                        ? conf.getInt("breaker.failure-threshold") : DEFAULT_BREAKER_FAILURES,
+                conf.hasPath("breaker.open-duration")
+                        ? conf.getDuration("breaker.open-duration", TimeUnit.MILLISECONDS) : DEFAULT_BREAKER_OPEN_MILLIS);
+        if (standIn != null) {
+            transport = standIn;
+        } else {
+            try {
+                client = createClient();
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+            }
+            transport = new Transport() {
+                @Override
+                public ActionFuture<IndexResponse> index(IndexRequest request) {
+                    return client.index(request);
+                }
+
+                @Override
+                public ActionFuture<SearchResponse> search(SearchRequest request) {
+                    return client.search(request);
+                }
+            };
+        }
+        if (conf.hasPath("spool.dir")) {
+            try {
+                spool = new ElasticSpool(Paths.get(conf.getString("spool.dir")), conf.getInt("spool.max-entries"));
+            } catch (IOException e) {
+                log.error("Cannot open spool {}, writes will not be buffered", conf.getString("spool.dir"), e);
+            }
+        }
+        if (spool != null) {
+            long interval = conf.hasPath("spool.drain-interval")
+                    ? conf.getDuration("spool.drain-interval", TimeUnit.MILLISECONDS) : DEFAULT_DRAIN_INTERVAL_MILLIS;
+            spoolDrainer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "es-spool-drainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            spoolDrainer.scheduleWithFixedDelay(this::drainSpool, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void close() {
+        if (spoolDrainer != null) {
+            spoolDrainer.shutdownNow();
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    public CircuitBreaker.State getBreakerState() {
+        return breaker.getState();
+    }
+
+    public int getSpoolSize() {
+        return spool == null ? 0 : spool.size();
+    }
+
+    /**
+     * Runs a request through the circuit breaker with {@code es.request-timeout}. Throws
+     * {@link RejectedExecutionException} without touching the cluster while the breaker is open.
+     * Only availability failures (see {@link #isUnavailable(Throwable)}) count against the breaker;
+     * a cluster that answers with a client error is healthy.
+     */
+    private <T> T execute(Supplier<ActionFuture<T>> request) throws ExecutionException, InterruptedException {
+        if (!breaker.allowRequest()) {
+            throw new RejectedExecutionException("Elasticsearch is unavailable, circuit is open");
+        }
+        try {
+            T response = request.get().get(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+            breaker.recordSuccess();
+            return response;
+        } catch (TimeoutException e) {
+            breaker.recordFailure();
+            throw new ExecutionException("Elasticsearch did not answer within " + requestTimeoutMillis + " ms", e);
+        } catch (ExecutionException | RuntimeException e) {
+            if (isUnavailable(e)) {
+                breaker.recordFailure();
+            } else {
+                breaker.recordSuccess();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            breaker.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether {@code e} means the cluster could not serve the request (timeout, open circuit, no
+     * reachable node, overload) as opposed to refusing this particular request.
+     */
+    static boolean isUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException || cause instanceof RejectedExecutionException
+                    || cause instanceof ConnectTransportException
+                    || cause instanceof ReceiveTimeoutTransportException) {
+                return true;
+            }
+            if (cause instanceof ElasticsearchException) {
+                RestStatus status = ((ElasticsearchException) cause).status();
+                return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE
+                        || status == RestStatus.BAD_GATEWAY || status == RestStatus.GATEWAY_TIMEOUT;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indexes {@code news}. While the breaker is not closed, or the write fails because the cluster
+     * is unavailable, the news goes to the spool and is indexed in the background after recovery.
+     * Once the breaker is closed again new writes go straight to the cluster while the backlog
+     * drains; ids are URIs, so the order does not matter. Returns false
+     * only when the spool is full and the news was dropped. Requests the cluster refuses (mapping or
+     * parse errors) are not spooled, their exception is thrown.
+     */
+    public boolean index(OneNews news) throws IOException, ExecutionException, InterruptedException {
+        if (spool == null) {
+            indexNow(news);
+            return true;
+        }
+        if (breaker.getState() == CircuitBreaker.State.CLOSED) {
+            try {
+                indexNow(news);
+                return true;
+            } catch (ExecutionException | RuntimeException e) {
+                if (!isUnavailable(e)) {
+                    throw e;
+                }
+                log.debug("Spooling {}: {}", news.getURI(), e.getMessage());
+            }
+        }
+        if (!spool.offer(news)) {
+            log.error("Spool is full, dropping {}", news.getURI());
+            return false;
+        }
+        return true;
+    }
+
+    private void indexNow(OneNews news) throws ExecutionException, InterruptedException {
+        Map<String, Object> source = new HashMap<>();
+        source.put("header", news.getHeader());
+        source.put("author", news.getAuthor());
+        source.put("text", news.getText());
+        source.put("uri", news.getURI());
+        if (news.getEntities() != null) {
+            source.put("entities", news.getEntities());
+        }
+        IndexRequest indexRequest = new IndexRequest(INDEX_NAME).source(source);
+        if (news.getURI() != null) {
+            // stable id: a write that timed out but landed is overwritten on replay, not duplicated
+            indexRequest.id(news.getURI());
+        }
+        execute(() -> transport.index(indexRequest));
+    }
+
+    private void drainSpool() {
+        if (spool.size() == 0) {
+            return;
+        }
         try {
-            client = createClient();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+            int drained = spool.drain(news -> {
+                try {
+                    indexNow(news);
+                    return ElasticSpool.Outcome.INDEXED;
+                } catch (ExecutionException | RuntimeException e) {
+                    return isUnavailable(e) ? ElasticSpool.Outcome.RETRY_LATER : ElasticSpool.Outcome.REJECTED;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return ElasticSpool.Outcome.RETRY_LATER;
+                }
+            });
+            if (drained > 0) {
+                log.info("Indexed {} spooled news, {} left", drained, spool.size());
+            }
+        } catch (IOException e) {
+            log.error("Failed to drain spool", e);
         }
     }
 
@@ -107,7 +392,7 @@ public class ElasticConfigurator {
         else searchSourceBuilder.query(QueryBuilders.matchQuery(key, searchString));
 
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest).get();
+        SearchResponse searchResponse = execute(() -> transport.search(searchRequest));
         List<OneNews> news = new ArrayList<>();
         for (SearchHit hit : searchResponse.getHits().getHits()) {
             Map<String, Object> sourceAsMap = hit.getSourceAsMap();
@@ -116,23 +401,103 @@ public class ElasticConfigurator {
             oneNews.setAuthor((String) sourceAsMap.get("author"));
             oneNews.setText((String) sourceAsMap.get("text"));
             oneNews.setURI((String) sourceAsMap.get("uri"));
+            oneNews.setEntities(entitiesOf(sourceAsMap.get("entities")));
             news.add(oneNews);
         }
         return news;
     }
 
-    public void aggregation() throws ExecutionException, InterruptedException {
-        SearchRequest searchRequest = new SearchRequest(INDEX_NAME);
-        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-        TermsAggregationBuilder aggregationBuilder = AggregationBuilders.terms("author_count").field("author.keyword");
+    @SuppressWarnings("unchecked")
+    private static List<String> entitiesOf(Object value) {
+        return value instanceof List ? (List<String>) value : null;
+    }
 
-        searchSourceBuilder.aggregation(aggregationBuilder);
-        searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest).get();
-        Terms terms = searchResponse.getAggregations().get("author_count");
+    public List<AggregationBucket> aggregation() throws ExecutionException, InterruptedException {
+        return aggregate(AUTHOR_FIELD);
+    }
+
+    public List<AggregationBucket> aggregate(String... fields) throws ExecutionException, InterruptedException {
+        return aggregate(QueryBuilders.matchAllQuery(), fields);
+    }
+
+    /**
+     * Counts documents matching {@code query} per distinct combination of {@code fields}, e.g.
+     * {@link #AUTHOR_FIELD} and {@link #ENTITY_FIELD}. All buckets are returned, fetched page by page
+     * with a composite aggregation. Results are cached for {@code es.aggregation-cache-ttl}.
+     *
+     * <p>{@link #ENTITY_FIELD} is only populated for news indexed with
+     * {@link OneNews#setEntities(List)}, see {@link entityDetection#extractEntities}.
+     */
+    public List<AggregationBucket> aggregate(QueryBuilder query, String... fields)
+            throws ExecutionException, InterruptedException {
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("at least one aggregation field is required");
+        }
+        String cacheKey = String.join(",", fields) + '|' + query;
+        long now = System.currentTimeMillis();
+        CachedAggregation cached = aggregationCache.get(cacheKey);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.buckets;
+        }
+
+        List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>();
+        for (String field : fields) {
+            sources.add(new TermsValuesSourceBuilder(field).field(field));
+        }
+
+        List<AggregationBucket> buckets = new ArrayList<>();
+        try {
+            fetchComposite(query, sources, buckets);
+        } catch (ExecutionException | RejectedExecutionException e) {
+            if (cached == null) {
+                throw e;
+            }
+            // degraded cluster: a stale answer is better than none for dashboards
+            log.warn("Serving stale aggregation for {}: {}", cacheKey, e.getMessage());
+            return cached.buckets;
+        }
+
+        List<AggregationBucket> result = Collections.unmodifiableList(buckets);
+        cacheAggregation(cacheKey, new CachedAggregation(result, now + aggregationTtlMillis));
+        return result;
+    }
+
+    private void fetchComposite(QueryBuilder query, List<CompositeValuesSourceBuilder<?>> sources,
+                                List<AggregationBucket> buckets) throws ExecutionException, InterruptedException {
+        Map<String, Object> afterKey = null;
+        do {
+            CompositeAggregationBuilder aggregationBuilder =
+                    AggregationBuilders.composite(COMPOSITE_NAME, sources).size(COMPOSITE_PAGE_SIZE);
+            if (afterKey != null) {
+                aggregationBuilder.aggregateAfter(afterKey);
+            }
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                    .query(query)
+                    .size(0)
+                    .aggregation(aggregationBuilder);
+            SearchRequest searchRequest = new SearchRequest(INDEX_NAME).source(searchSourceBuilder);
+            SearchResponse searchResponse = execute(() -> transport.search(searchRequest));
+
+            CompositeAggregation composite = searchResponse.getAggregations().get(COMPOSITE_NAME);
+            for (CompositeAggregation.Bucket bucket : composite.getBuckets()) {
+                buckets.add(new AggregationBucket(bucket.getKey(), bucket.getDocCount()));
+            }
+            afterKey = composite.getBuckets().isEmpty() ? null : composite.afterKey();
+        } while (afterKey != null);
+    }
+
+    public void invalidateAggregations() {
+        aggregationCache.clear();
+    }
 
-        for (Terms.Bucket bucket : terms.getBuckets()) {
-            System.out.println("author=" + bucket.getKey() + " count=" + bucket.getDocCount());
+    private void cacheAggregation(String key, CachedAggregation value) {
+        if (aggregationCache.size() >= MAX_CACHED_AGGREGATIONS) {
+            long now = System.currentTimeMillis();
+            aggregationCache.values().removeIf(entry -> entry.expiresAt <= now);
+            if (aggregationCache.size() >= MAX_CACHED_AGGREGATIONS) {
+                aggregationCache.clear();
+            }
         }
+        aggregationCache.put(key, value);
     }
 }
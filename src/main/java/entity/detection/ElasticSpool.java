@@ -0,0 +1,143 @@
+package entity.detection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded on-disk queue of news waiting to be indexed while Elasticsearch is unavailable.
+ *
+ * <p>Every entry is a JSON file named by enqueue time and sequence number, so draining in name
+ * order preserves arrival order, and entries survive a restart. Entries the cluster refuses for
+ * good are appended to {@code dead-letter.jsonl} in the same directory instead of blocking the
+ * queue.
+ */
+@Slf4j
+public class ElasticSpool {
+    private final static String SUFFIX = ".json";
+    private final static String TMP_SUFFIX = ".tmp";
+    private final static String DEAD_LETTER = "dead-letter.jsonl";
+
+    public enum Outcome {
+        /** Indexed, remove the entry. */
+        INDEXED,
+        /** Cluster unavailable, keep the entry and stop draining. */
+        RETRY_LATER,
+        /** Refused for good (mapping, parse errors), move the entry to the dead-letter file. */
+        REJECTED
+    }
+
+    /** Indexing callback used while draining. */
+    public interface Sink {
+        Outcome accept(ElasticConfigurator.OneNews news);
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path dir;
+    private final int maxEntries;
+    private final AtomicLong sequence = new AtomicLong();
+    private int size;
+
+    public ElasticSpool(Path dir, int maxEntries) throws IOException {
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        Files.createDirectories(dir);
+        // left over by a crash between writing an entry and renaming it
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + TMP_SUFFIX)) {
+            for (Path tmp : stream) {
+                log.warn("Removing incomplete spool entry {}", tmp);
+                Files.deleteIfExists(tmp);
+            }
+        }
+        this.size = listEntries().size();
+        if (size > 0) {
+            log.info("Spool {} has {} pending entries", dir, size);
+        }
+    }
+
+    /**
+     * Persists {@code news}; returns false if the spool is full and the entry was dropped.
+     */
+    public synchronized boolean offer(ElasticConfigurator.OneNews news) throws IOException {
+        if (size >= maxEntries) {
+            return false;
+        }
+        String name = String.format("%019d-%019d", System.currentTimeMillis(), sequence.getAndIncrement());
+        Path tmp = dir.resolve(name + TMP_SUFFIX);
+        mapper.writeValue(tmp.toFile(), news);
+        Files.move(tmp, dir.resolve(name + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        size++;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Hands entries to {@code sink} oldest first, deleting indexed ones and dead-lettering rejected
+     * ones. Stops at the first entry that has to be retried. Returns the number of indexed entries.
+     */
+    public int drain(Sink sink) throws IOException {
+        int drained = 0;
+        for (Path entry : listEntries()) {
+            ElasticConfigurator.OneNews news;
+            try {
+                news = mapper.readValue(entry.toFile(), ElasticConfigurator.OneNews.class);
+            } catch (IOException e) {
+                log.error("Dropping unreadable spool entry {}", entry, e);
+                remove(entry);
+                continue;
+            }
+            Outcome outcome = sink.accept(news);
+            if (outcome == Outcome.RETRY_LATER) {
+                break;
+            }
+            if (outcome == Outcome.REJECTED) {
+                log.error("Elasticsearch rejected spooled {}, moving it to {}", news.getURI(), DEAD_LETTER);
+                deadLetter(entry);
+            } else {
+                drained++;
+            }
+            remove(entry);
+        }
+        return drained;
+    }
+
+    private synchronized void deadLetter(Path entry) throws IOException {
+        byte[] json = Files.readAllBytes(entry);
+        try (OutputStream out = Files.newOutputStream(dir.resolve(DEAD_LETTER),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(json);
+            out.write('\n');
+        }
+    }
+
+    private synchronized void remove(Path entry) throws IOException {
+        if (Files.deleteIfExists(entry)) {
+            size--;
+        }
+    }
+
+    private List<Path> listEntries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+}
@@ -0,0 +1,405 @@
+package entity.detection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.CoreDocument;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load and soak test: feeds synthetic news through {@link entityDetection#buildPipeline()} at a
+ * fixed rate (or as fast as possible) and writes a JSON report with throughput, latency
+ * percentiles, heap and GC figures per interval and for the whole run.
+ *
+ * <p>Latency is measured from the moment a document was scheduled, not when a worker picked it
+ * up, so queueing behind a slow pipeline shows up in the percentiles. Indexing goes through
+ * {@link ElasticConfigurator} to a real cluster ({@code elastic = real}) or to a
+ * {@link StubElasticTransport} ({@code elastic = stub}), so request timeouts, the breaker and the
+ * spool are part of the measurement, or is skipped ({@code elastic = none}). The stub spools to a
+ * fresh temporary directory, so every run starts with an empty spool. GC and lemmatizer figures
+ * in the summary cover the measured run only, not model loading and warmup.
+ *
+ * <p>With {@code batch.enabled}, documents up to {@code batch.max-document-chars} go through a
+ * {@link MicroBatcher} the way {@link PipelineServer} routes them, and {@code concurrency} is the
+ * number of clients waiting on it; set {@code headlines-only} to measure the headline case.
+ *
+ * <p>Run with {@code -Dloadtest.duration=1h -Dloadtest.rate=50} etc. to override
+ * {@code application.conf}.
+ */
+@Slf4j
+public class LoadTestHarness {
+    private final static double MICROS_PER_MS = 1000.0;
+
+    private final Config conf;
+    private final ElasticConfigurator elastic;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SyntheticNewsGenerator generator;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> intervalLatency = new AtomicReference<>(new LatencyHistogram());
+    private final AtomicReference<LatencyHistogram> intervalService = new AtomicReference<>(new LatencyHistogram());
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder characters = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final ArrayNode intervals = mapper.createArrayNode();
+
+    private BlockingQueue<Job> queue;
+    private long startNanos;
+    private long lastSnapshotNanos;
+    private long lastDocuments;
+    private long lastCharacters;
+    private long lastGcCount;
+    private long lastGcMillis;
+    private long startGcCount;
+    private long startGcMillis;
+    private long startLookups;
+    private long startUnknown;
+    private long startFallbacks;
+
+    private static class Job {
+        private final ElasticConfigurator.OneNews news;
+        private final long scheduledNanos;
+
+        private Job(ElasticConfigurator.OneNews news, long scheduledNanos) {
+            this.news = news;
+            this.scheduledNanos = scheduledNanos;
+        }
+    }
+
+    private final static Job POISON = new Job(null, 0);
+
+    /**
+     * @param conf the {@code loadtest} config section
+     * @param elastic initialized configurator, null when {@code elastic = none}
+     */
+    public LoadTestHarness(Config conf, ElasticConfigurator elastic) {
+        this.conf = conf;
+        this.elastic = elastic;
+        this.generator = new SyntheticNewsGenerator(conf.getLong("seed"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config conf = ConfigFactory.load();
+        Config loadtest = conf.getConfig("loadtest");
+        ElasticConfigurator esCon = null;
+        String mode = loadtest.getString("elastic");
+        if ("real".equals(mode)) {
+            esCon = new ElasticConfigurator();
+            esCon.initialize(conf.getConfig("es"));
+        } else if ("stub".equals(mode)) {
+            Path spoolDir = Files.createTempDirectory("loadtest-spool");
+            log.info("Stub spool is {}", spoolDir);
+            esCon = new ElasticConfigurator();
+            esCon.initialize(conf.getConfig("es")
+                            .withValue("spool.dir", ConfigValueFactory.fromAnyRef(spoolDir.toString())),
+                    new StubElasticTransport(loadtest.getConfig("stub")));
+        }
+        ObjectNode report = new LoadTestHarness(loadtest, esCon).run();
+        File out = new File(loadtest.getString("report-path"));
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, report);
+        log.info("Report written to {}", out.getAbsolutePath());
+        if (esCon != null) {
+            esCon.close();
+        }
+    }
+
+    public ObjectNode run() throws Exception {
+        ObjectNode report = mapper.createObjectNode();
+        report.put("startedAt", Instant.now().toString());
+        report.set("environment", environment());
+        report.set("settings", mapper.valueToTree(conf.root().unwrapped()));
+
+        long loadStart = System.nanoTime();
+        List<Annotator> stages = entityDetection.sharedTaggingStages().get();
+        StanfordCoreNLP pipeline = entityDetection.buildPipeline(stages);
+        report.put("modelLoadMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
+
+        int warmup = conf.getInt("warmup-documents");
+        for (int i = 0; i < warmup; i++) {
+            pipeline.annotate(new CoreDocument(textOf(nextNews())));
+        }
+        log.info("Warmed up with {} documents", warmup);
+
+        MicroBatcher batcher = null;
+        Semaphore permits = null;
+        int batchMaxDocumentChars = 0;
+        if (conf.getBoolean("batch.enabled")) {
+            Config batch = conf.getConfig("batch");
+            int batchWorkers = batch.getInt("workers");
+            if (batchWorkers <= 0) {
+                batchWorkers = Runtime.getRuntime().availableProcessors();
+            }
+            // shared with unbatched documents, as in the server
+            permits = new Semaphore(batchWorkers);
+            batcher = new MicroBatcher(entityDetection.buildTokenizer(), stages,
+                    batch.getInt("max-size"), batch.getInt("max-chars"),
+                    batch.getDuration("max-delay", TimeUnit.MILLISECONDS), batchWorkers, permits);
+            batchMaxDocumentChars = batch.getInt("max-document-chars");
+        }
+
+        int concurrency = conf.getInt("concurrency");
+        queue = new ArrayBlockingQueue<>(conf.getInt("queue-capacity"));
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            MicroBatcher workerBatcher = batcher;
+            Semaphore workerPermits = permits;
+            int maxDocumentChars = batchMaxDocumentChars;
+            Thread worker = new Thread(() -> work(pipeline, workerBatcher, workerPermits, maxDocumentChars),
+                    "loadtest-worker-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        startNanos = System.nanoTime();
+        lastSnapshotNanos = startNanos;
+        startGcCount = gcCount();
+        startGcMillis = gcMillis();
+        startLookups = RussianLemmatizationAnnotator.getLookupCount();
+        startUnknown = RussianLemmatizationAnnotator.getUnknownCount();
+        startFallbacks = RussianLemmatizationAnnotator.getFallbackCount();
+        lastGcCount = startGcCount;
+        lastGcMillis = startGcMillis;
+        long intervalMillis = conf.getDuration("report-interval", TimeUnit.MILLISECONDS);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(this::snapshot, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+        produce();
+
+        for (int i = 0; i < concurrency; i++) {
+            queue.put(POISON);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (batcher != null) {
+            batcher.close();
+        }
+        reporter.shutdown();
+        reporter.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        snapshot();
+
+        report.set("intervals", intervals);
+        report.set("summary", summary());
+        return report;
+    }
+
+    private void produce() throws InterruptedException {
+        long durationNanos = conf.getDuration("duration", TimeUnit.NANOSECONDS);
+        double rate = conf.getDouble("rate");
+        long sent = 0;
+        while (true) {
+            long now = System.nanoTime();
+            long scheduled = now;
+            if (rate > 0) {
+                scheduled = startNanos + (long) (sent * 1e9 / rate);
+                if (scheduled > now) {
+                    TimeUnit.NANOSECONDS.sleep(scheduled - now);
+                }
+            }
+            if (scheduled - startNanos >= durationNanos) {
+                return;
+            }
+            queue.put(new Job(nextNews(), scheduled));
+            sent++;
+        }
+    }
+
+    private void work(StanfordCoreNLP pipeline, MicroBatcher batcher, Semaphore permits,
+                      int batchMaxDocumentChars) {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (job == POISON) {
+                return;
+            }
+            try {
+                String text = textOf(job.news);
+                long begin = System.nanoTime();
+                CoreDocument document;
+                if (batcher != null && text.length() <= batchMaxDocumentChars) {
+                    document = batcher.submit(text).get();
+                } else {
+                    document = new CoreDocument(text);
+                    if (permits != null) {
+                        permits.acquire();
+                    }
+                    try {
+                        pipeline.annotate(document);
+                    } finally {
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                }
+                job.news.setEntities(entityDetection.extractEntities(document));
+                long annotated = System.nanoTime();
+
+                if (elastic != null && !elastic.index(job.news)) {
+                    dropped.increment();
+                }
+
+                long end = System.nanoTime();
+                long serviceMicros = TimeUnit.NANOSECONDS.toMicros(annotated - begin);
+                long latencyMicros = TimeUnit.NANOSECONDS.toMicros(end - job.scheduledNanos);
+                service.record(serviceMicros);
+                intervalService.get().record(serviceMicros);
+                latency.record(latencyMicros);
+                intervalLatency.get().record(latencyMicros);
+                documents.increment();
+                characters.add(text.length());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                errors.increment();
+                log.warn("Document {} failed", job.news.getURI(), e);
+            }
+        }
+    }
+
+    private ElasticConfigurator.OneNews nextNews() {
+        return generator.next(conf.getInt("min-sentences"), conf.getInt("max-sentences"));
+    }
+
+    private String textOf(ElasticConfigurator.OneNews news) {
+        if (conf.getBoolean("headlines-only")) {
+            return news.getHeader();
+        }
+        return news.getHeader() + ". " + news.getText();
+    }
+
+    private synchronized void snapshot() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSnapshotNanos) / 1e9;
+        long docs = documents.sum();
+        long chars = characters.sum();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        LatencyHistogram latencies = intervalLatency.getAndSet(new LatencyHistogram());
+        LatencyHistogram services = intervalService.getAndSet(new LatencyHistogram());
+
+        ObjectNode interval = intervals.addObject();
+        interval.put("elapsedSeconds", (now - startNanos) / 1e9);
+        interval.put("documents", docs - lastDocuments);
+        interval.put("documentsPerSecond", seconds > 0 ? (docs - lastDocuments) / seconds : 0);
+        interval.put("charactersPerSecond", seconds > 0 ? (chars - lastCharacters) / seconds : 0);
+        interval.set("latencyMs", percentiles(latencies));
+        interval.set("serviceMs", percentiles(services));
+        interval.put("heapUsedMb", heap.getUsed() >> 20);
+        interval.put("heapCommittedMb", heap.getCommitted() >> 20);
+        interval.put("gcCount", gcCount - lastGcCount);
+        interval.put("gcMillis", gcMillis - lastGcMillis);
+        interval.put("queueDepth", queue.size());
+        interval.put("errors", errors.sum());
+
+        log.info("{} docs in {} s, p99 {} ms, heap {} MB", docs - lastDocuments, String.format("%.1f", seconds),
+                latencies.percentile(99) / MICROS_PER_MS, heap.getUsed() >> 20);
+
+        lastSnapshotNanos = now;
+        lastDocuments = docs;
+        lastCharacters = chars;
+        lastGcCount = gcCount;
+        lastGcMillis = gcMillis;
+    }
+
+    private ObjectNode summary() {
+        double seconds = (lastSnapshotNanos - startNanos) / 1e9;
+        long maxHeapUsed = 0;
+        for (int i = 0; i < intervals.size(); i++) {
+            maxHeapUsed = Math.max(maxHeapUsed, intervals.get(i).get("heapUsedMb").asLong());
+        }
+        ObjectNode summary = mapper.createObjectNode();
+        summary.put("durationSeconds", seconds);
+        summary.put("documents", documents.sum());
+        summary.put("errors", errors.sum());
+        summary.put("documentsPerSecond", seconds > 0 ? documents.sum() / seconds : 0);
+        summary.put("charactersPerSecond", seconds > 0 ? characters.sum() / seconds : 0);
+        summary.set("latencyMs", percentiles(latency));
+        summary.set("serviceMs", percentiles(service));
+        summary.put("maxHeapUsedMb", maxHeapUsed);
+        summary.put("gcCount", lastGcCount - startGcCount);
+        summary.put("gcMillis", lastGcMillis - startGcMillis);
+        long known = RussianLemmatizationAnnotator.getLookupCount() - startLookups
+                - (RussianLemmatizationAnnotator.getUnknownCount() - startUnknown);
+        long fallbacks = RussianLemmatizationAnnotator.getFallbackCount() - startFallbacks;
+        summary.put("lemmaFallbackRate", known > 0 ? (double) fallbacks / known : 0.0);
+        if (elastic != null) {
+            summary.put("elasticSpooled", elastic.getSpoolSize());
+            summary.put("elasticDropped", dropped.sum());
+            summary.put("elasticBreaker", elastic.getBreakerState().name());
+        }
+        return summary;
+    }
+
+    private ObjectNode percentiles(LatencyHistogram histogram) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("count", histogram.count());
+        node.put("p50", histogram.percentile(50) / MICROS_PER_MS);
+        node.put("p90", histogram.percentile(90) / MICROS_PER_MS);
+        node.put("p99", histogram.percentile(99) / MICROS_PER_MS);
+        node.put("p999", histogram.percentile(99.9) / MICROS_PER_MS);
+        node.put("max", histogram.max() / MICROS_PER_MS);
+        return node;
+    }
+
+    private ObjectNode environment() {
+        ObjectNode env = mapper.createObjectNode();
+        env.put("javaVersion", System.getProperty("java.version"));
+        env.put("processors", Runtime.getRuntime().availableProcessors());
+        env.put("maxHeapMb", Runtime.getRuntime().maxMemory() >> 20);
+        ArrayNode collectors = env.putArray("garbageCollectors");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collectors.add(gc.getName());
+        }
+        String version = LoadTestHarness.class.getPackage().getImplementationVersion();
+        env.put("version", version != null ? version : "dev");
+        return env;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
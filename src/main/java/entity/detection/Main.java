@@ -23,6 +23,10 @@ import static entity.detection.entityDetection.buildPipeline;
 @Slf4j
 public class Main {
     public static void main(String[] args) throws FileNotFoundException, IOException, ExecutionException, InterruptedException {
+        if (args.length > 0 && "serve".equals(args[0])) {
+            serve();
+            return;
+        }
 
         CoreDocument docs = new CoreDocument("Однажды весною, в час небывало жаркого заката, в Москве, на Патриарших прудах, появились два гражданина.");
         StanfordCoreNLP pipeline = buildPipeline();
@@ -43,4 +47,22 @@ public class Main {
         List<ElasticConfigurator.OneNews> testSearch2 = esCon.search("", "");
         System.out.println(testSearch2.get(0).getText());*/
     }
+
+    private static void serve() throws IOException {
+        Config conf = ConfigFactory.load();
+        Config serverConf = conf.getConfig("server");
+        // off by default so the server runs without a cluster; /search then answers 501
+        boolean search = serverConf.hasPath("search.enabled") && serverConf.getBoolean("search.enabled");
+        ElasticConfigurator esCon = search ? new ElasticConfigurator() : null;
+        if (esCon != null) {
+            esCon.initialize(conf.getConfig("es"));
+        }
+        PipelineServer server = PipelineServer.start(serverConf, esCon);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            if (esCon != null) {
+                esCon.close();
+            }
+        }));
+    }
 }
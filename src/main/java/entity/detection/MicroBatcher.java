@@ -0,0 +1,208 @@
+package entity.detection;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.AnnotationPipeline;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.CoreDocument;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups short documents (headlines, snippets) into shared annotation passes.
+ *
+ * <p>Each document is tokenized and sentence-split on its own, then the sentences of the whole
+ * batch are pooled into a single {@link Annotation} and pushed through the sentence-level stages
+ * in one call per stage. The stages write into the shared {@link CoreLabel} objects, so every
+ * document ends up fully annotated without any copying back.
+ *
+ * <p>A batch is closed when it reaches {@code maxBatchSize} documents, {@code maxBatchChars}
+ * characters, or when {@code maxDelayMillis} has passed since its first document arrived.
+ *
+ * <p>Each batch holds one permit of {@code permits} while it is annotated, so batched and
+ * unbatched work share the same CPU cap.
+ */
+@Slf4j
+public class MicroBatcher implements AutoCloseable {
+    private final static long IDLE_POLL_MILLIS = 100;
+
+    private final StanfordCoreNLP tokenizer;
+    private final AnnotationPipeline stages;
+    private final int maxBatchSize;
+    private final int maxBatchChars;
+    private final long maxDelayNanos;
+    private final Semaphore permits;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private static class Pending {
+        private final String text;
+        private final CompletableFuture<CoreDocument> result = new CompletableFuture<>();
+
+        private Pending(String text) {
+            this.text = text;
+        }
+    }
+
+    public MicroBatcher(StanfordCoreNLP tokenizer, List<Annotator> stages,
+                        int maxBatchSize, int maxBatchChars, long maxDelayMillis, int numWorkers,
+                        Semaphore permits) {
+        this.tokenizer = tokenizer;
+        this.stages = new AnnotationPipeline(stages);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchChars = maxBatchChars;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.permits = permits;
+
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(this::run, "micro-batcher-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Queues a document; the future completes once the batch it landed in has been annotated.
+     */
+    public CompletableFuture<CoreDocument> submit(String text) {
+        Pending pending = new Pending(text);
+        if (!running) {
+            pending.result.completeExceptionally(new IllegalStateException("batcher is closed"));
+            return pending.result;
+        }
+        queue.add(pending);
+        if (!running && queue.remove(pending)) {
+            // close() may have drained the queue between the check above and the add
+            pending.result.completeExceptionally(new IllegalStateException("batcher is closed"));
+        }
+        return pending.result;
+    }
+
+    /**
+     * Annotates the given texts and waits for all of them, preserving order.
+     */
+    public List<CoreDocument> annotateAll(List<String> texts)
+            throws ExecutionException, InterruptedException {
+        List<CompletableFuture<CoreDocument>> futures = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            futures.add(submit(text));
+        }
+        List<CoreDocument> documents = new ArrayList<>(texts.size());
+        for (CompletableFuture<CoreDocument> future : futures) {
+            documents.add(future.get());
+        }
+        return documents;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new IllegalStateException("batcher is closed"));
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                Pending first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                int chars = first.text.length();
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize && chars < maxBatchChars) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    chars += next.text.length();
+                }
+                permits.acquire();
+                try {
+                    process(batch);
+                } finally {
+                    permits.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Pending pending : batch) {
+                    pending.result.completeExceptionally(e);
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<Pending> batch) {
+        List<Annotation> annotations = new ArrayList<>(batch.size());
+        List<CoreMap> sentences = new ArrayList<>();
+        List<CoreLabel> tokens = new ArrayList<>();
+        for (Pending pending : batch) {
+            Annotation annotation = new Annotation(pending.text);
+            try {
+                tokenizer.annotate(annotation);
+            } catch (RuntimeException e) {
+                pending.result.completeExceptionally(e);
+                annotations.add(null);
+                continue;
+            }
+            annotations.add(annotation);
+            sentences.addAll(annotation.get(CoreAnnotations.SentencesAnnotation.class));
+            tokens.addAll(annotation.get(CoreAnnotations.TokensAnnotation.class));
+        }
+
+        Annotation combined = new Annotation("");
+        combined.set(CoreAnnotations.SentencesAnnotation.class, sentences);
+        combined.set(CoreAnnotations.TokensAnnotation.class, tokens);
+        try {
+            stages.annotate(combined);
+        } catch (RuntimeException e) {
+            // one bad document should not fail its neighbours, redo the batch one by one
+            log.warn("Batch of {} documents failed, annotating them separately", batch.size(), e);
+            for (int i = 0; i < batch.size(); i++) {
+                if (annotations.get(i) == null) {
+                    continue;
+                }
+                try {
+                    stages.annotate(annotations.get(i));
+                } catch (RuntimeException single) {
+                    batch.get(i).result.completeExceptionally(single);
+                }
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (annotations.get(i) != null) {
+                // no-op for documents already failed above
+                batch.get(i).result.complete(new CoreDocument(annotations.get(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package entity.detection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.CoreDocument;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lightweight HTTP front end for the annotation pipeline.
+ *
+ * <p>Every exchange is handled on its own virtual thread (or a cached platform thread on JVMs
+ * without Loom), so blocking Elasticsearch calls do not tie up a fixed pool. CPU-bound pipeline
+ * work is capped by a semaphore sized to the number of cores.
+ *
+ * <ul>
+ *   <li>{@code GET /health} - liveness, always 200</li>
+ *   <li>{@code GET /ready} - 200 once the models are loaded, 503 before that</li>
+ *   <li>{@code POST /annotate[?search=field]} - annotates the UTF-8 body, optionally searching
+ *   {@code field} for the same text</li>
+ *   <li>{@code GET /search?key=field&q=text} - plain Elasticsearch search</li>
+ *   <li>{@code GET /metrics} - lemmatizer lookup and fallback counters</li>
+ * </ul>
+ *
+ * <p>When a {@link MicroBatcher} is attached, bodies up to {@code batch.max-document-chars} are
+ * annotated through it; each batch takes one permit from the same semaphore.
+ */
+@Slf4j
+public class PipelineServer {
+    private final static int DEFAULT_PORT = 8080;
+    private final static int DEFAULT_MAX_BODY_BYTES = 1 << 20;
+    private final static long DEFAULT_BATCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final CompletableFuture<StanfordCoreNLP> pipeline;
+    private final ElasticConfigurator elastic;
+    private final int annotationPermits;
+    private final Semaphore pipelinePermits;
+    private final int maxBodyBytes;
+    private final ExecutorService executor;
+    private final HttpServer server;
+    private volatile MicroBatcher batcher;
+    private volatile int batchMaxDocumentChars;
+    private volatile long batchTimeoutMillis = DEFAULT_BATCH_TIMEOUT_MILLIS;
+
+    /**
+     * @param conf the {@code server} config section, may be empty
+     * @param pipeline pipeline that becomes ready once models are loaded
+     * @param elastic initialized configurator, or null to disable search
+     */
+    public PipelineServer(Config conf, CompletableFuture<StanfordCoreNLP> pipeline,
+                          ElasticConfigurator elastic) throws IOException {
+        this.pipeline = pipeline;
+        this.elastic = elastic;
+
+        int permits = conf.hasPath("max-concurrent-annotations")
+                ? conf.getInt("max-concurrent-annotations") : 0;
+        if (permits <= 0) {
+            permits = Runtime.getRuntime().availableProcessors();
+        }
+        this.annotationPermits = permits;
+        this.pipelinePermits = new Semaphore(permits);
+        this.maxBodyBytes = conf.hasPath("max-body-bytes")
+                ? conf.getInt("max-body-bytes") : DEFAULT_MAX_BODY_BYTES;
+
+        String host = conf.hasPath("host") ? conf.getString("host") : "0.0.0.0";
+        int port = conf.hasPath("port") ? conf.getInt("port") : DEFAULT_PORT;
+
+        this.executor = newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/health", exchange -> send(exchange, 200, "ok"));
+        this.server.createContext("/ready", this::handleReady);
+        this.server.createContext("/annotate", safely(this::handleAnnotate));
+        this.server.createContext("/search", safely(this::handleSearch));
+        this.server.createContext("/metrics", safely(this::handleMetrics));
+    }
+
+    public void start() {
+        server.start();
+        log.info("Pipeline server listening on {} with {} annotation permits",
+                server.getAddress(), annotationPermits);
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    /**
+     * Routes documents of at most {@code maxDocumentChars} characters through {@code batcher},
+     * waiting at most {@code timeoutMillis} for a batched result.
+     */
+    public void useBatcher(MicroBatcher batcher, int maxDocumentChars, long timeoutMillis) {
+        this.batchMaxDocumentChars = maxDocumentChars;
+        this.batchTimeoutMillis = timeoutMillis;
+        this.batcher = batcher;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public boolean isReady() {
+        return pipeline.isDone() && !pipeline.isCompletedExceptionally();
+    }
+
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not available on this JVM, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handleReady(HttpExchange exchange) throws IOException {
+        ObjectNode body = mapper.createObjectNode();
+        body.put("ready", isReady());
+        if (pipeline.isCompletedExceptionally()) {
+            body.put("error", "pipeline failed to load");
+        }
+        sendJson(exchange, isReady() ? 200 : 503, body);
+    }
+
+    private void handleAnnotate(HttpExchange exchange) throws Exception {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, "POST expected");
+            return;
+        }
+        if (!isReady()) {
+            send(exchange, 503, "models are not loaded yet");
+            return;
+        }
+        String searchField = queryParams(exchange).get("search");
+        if (searchField != null && elastic == null) {
+            send(exchange, 501, "search is not configured");
+            return;
+        }
+        String text = readBody(exchange);
+        if (text == null) {
+            send(exchange, 413, "request body exceeds " + maxBodyBytes + " bytes");
+            return;
+        }
+
+        CoreDocument document;
+        try {
+            document = annotate(text);
+        } catch (ExecutionException | RuntimeException e) {
+            // local failure, not an upstream one: log the details, keep them out of the response
+            log.error("Annotation of {} chars failed", text.length(),
+                    e instanceof ExecutionException ? e.getCause() : e);
+            send(exchange, 500, "annotation failed");
+            return;
+        } catch (TimeoutException e) {
+            send(exchange, 503, "annotation timed out");
+            return;
+        }
+
+        ObjectNode body = mapper.createObjectNode();
+        body.set("sentences", toJson(document));
+        if (searchField != null) {
+            body.set("news", mapper.valueToTree(elastic.search(searchField, text)));
+        }
+        sendJson(exchange, 200, body);
+    }
+
+    private CoreDocument annotate(String text)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        MicroBatcher currentBatcher = batcher;
+        if (currentBatcher != null && text.length() <= batchMaxDocumentChars) {
+            return currentBatcher.submit(text).get(batchTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        CoreDocument document = new CoreDocument(text);
+        pipelinePermits.acquire();
+        try {
+            pipeline.get().annotate(document);
+        } finally {
+            pipelinePermits.release();
+        }
+        return document;
+    }
+
+    private void handleSearch(HttpExchange exchange) throws Exception {
+        if (elastic == null) {
+            send(exchange, 501, "search is not configured");
+            return;
+        }
+        Map<String, String> params = queryParams(exchange);
+        List<ElasticConfigurator.OneNews> news =
+                elastic.search(params.getOrDefault("key", ""), params.getOrDefault("q", ""));
+        sendJson(exchange, 200, mapper.valueToTree(news));
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        ObjectNode body = mapper.createObjectNode();
+        if (elastic != null) {
+            ObjectNode es = body.putObject("elasticsearch");
+            es.put("breaker", elastic.getBreakerState().name());
+            es.put("spooled", elastic.getSpoolSize());
+        }
+        ObjectNode lemma = mapper.createObjectNode();
+        lemma.put("lookups", RussianLemmatizationAnnotator.getLookupCount());
+        lemma.put("unknown", RussianLemmatizationAnnotator.getUnknownCount());
+        lemma.put("fallbacks", RussianLemmatizationAnnotator.getFallbackCount());
+        lemma.put("fallbackRate", RussianLemmatizationAnnotator.getFallbackRate());
+        body.set("lemma", lemma);
+        sendJson(exchange, 200, body);
+    }
+
+    private ArrayNode toJson(CoreDocument document) {
+        ArrayNode sentences = mapper.createArrayNode();
+        List<CoreMap> coreMaps = document.annotation().get(CoreAnnotations.SentencesAnnotation.class);
+        if (coreMaps == null) {
+            return sentences;
+        }
+        for (CoreMap sentence : coreMaps) {
+            ArrayNode tokens = sentences.addArray();
+            for (CoreLabel cl : sentence.get(CoreAnnotations.TokensAnnotation.class)) {
+                ObjectNode token = tokens.addObject();
+                token.put("word", cl.word());
+                token.put("lemma", cl.lemma());
+                token.put("tag", cl.tag());
+                token.put("begin", cl.beginPosition());
+                token.put("end", cl.endPosition());
+                Map<String, String> feats = cl.get(CoreAnnotations.CoNLLUFeats.class);
+                if (feats != null && !feats.isEmpty()) {
+                    token.set("feats", mapper.valueToTree(feats));
+                }
+            }
+        }
+        return sentences;
+    }
+
+    private String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > maxBodyBytes) {
+                    return null;
+                }
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Map<String, String> queryParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    private interface ExchangeHandler {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    private static HttpHandler safely(ExchangeHandler handler) {
+        return exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "interrupted");
+            } catch (RejectedExecutionException e) {
+                send(exchange, 503, e.getMessage());
+            } catch (ExecutionException e) {
+                // annotation failures are handled in place, what is left comes from Elasticsearch
+                log.error("Request {} failed", exchange.getRequestURI(), e.getCause());
+                send(exchange, 502, "Elasticsearch request failed");
+            } catch (Exception e) {
+                log.error("Request {} failed", exchange.getRequestURI(), e);
+                send(exchange, 500, "internal error");
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        sendBytes(exchange, status, bytes);
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        sendBytes(exchange, status, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendBytes(HttpExchange exchange, int status, byte[] bytes) throws IOException {
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Starts the server and begins loading models in the background; {@code /ready} flips once
+     * loading completes.
+     */
+    public static PipelineServer start(Config conf, ElasticConfigurator elastic) throws IOException {
+        CompletableFuture<StanfordCoreNLP> pipeline = new CompletableFuture<>();
+        PipelineServer server = new PipelineServer(conf, pipeline, elastic);
+        entityDetection.sharedTaggingStages().whenComplete((stages, error) -> {
+            if (error != null) {
+                pipeline.completeExceptionally(error);
+                return;
+            }
+            try {
+                if (conf.hasPath("batch") && conf.getBoolean("batch.enabled")) {
+                    Config batch = conf.getConfig("batch");
+                    MicroBatcher batcher = new MicroBatcher(entityDetection.buildTokenizer(), stages,
+                            batch.getInt("max-size"), batch.getInt("max-chars"),
+                            batch.getDuration("max-delay", TimeUnit.MILLISECONDS), server.annotationPermits,
+                            server.pipelinePermits);
+                    server.useBatcher(batcher, batch.getInt("max-document-chars"),
+                            batch.hasPath("timeout")
+                                    ? batch.getDuration("timeout", TimeUnit.MILLISECONDS)
+                                    : DEFAULT_BATCH_TIMEOUT_MILLIS);
+                }
+                pipeline.complete(entityDetection.buildPipeline(stages));
+            } catch (Throwable t) {
+                log.error("Failed to build pipeline", t);
+                pipeline.completeExceptionally(t);
+            }
+        });
+
+        server.start();
+        return server;
+    }
+}
@@ -22,10 +22,12 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class RussianLemmatizationAnnotator implements edu.stanford.nlp.pipeline.Annotator {
@@ -36,16 +38,93 @@ public class RussianLemmatizationAnnotator implements edu.stanford.nlp.pipeline.
   public static final String DEFAULT_DICTIONARY_PATH =
       "edu//stanford//nlp//international//russian//process//dict.tsv";
 
-  // fix
-  private static Map<String, List<Pair<String, String>>> dict =
-      new HashMap<String, List<Pair<String, String>>>();
+  // built once by loadDictionary: most forms have a single lemma and need nothing more, only the
+  // ambiguous ones keep their candidates, grouped by UPOS
+  private static Map<String, String> lemmas = new HashMap<String, String>();
+
+  private static Map<String, FormEntry> ambiguous = new HashMap<String, FormEntry>();
+
+  private static final LongAdder lookups = new LongAdder();
+  private static final LongAdder unknownForms = new LongAdder();
+  private static final LongAdder fallbacks = new LongAdder();
+
+  // an exact tag match outweighs any feature agreement
+  private static final int EXACT_TAG_SCORE = 100;
+
   private final int nThreads;
 
+  private static class Candidate {
+    private final String lemma;
+    private final String tag;
+    private final long feats;
+
+    private Candidate(String lemma, String tag) {
+      this.lemma = lemma;
+      this.tag = tag;
+      String upos = upos(tag);
+      this.feats = upos.length() < tag.length()
+          ? RussianMorphoAnnotator.featsBits(upos, tag.substring(upos.length())) : 0L;
+    }
+  }
+
+  private static class FormEntry {
+    private final String[] upos;
+    private final Candidate[][] byUpos;
+    private final Candidate[] all;
+
+    private FormEntry(List<Pair<String, String>> lemmaTags) {
+      Map<String, List<Candidate>> grouped = new LinkedHashMap<String, List<Candidate>>();
+      all = new Candidate[lemmaTags.size()];
+      for (int i = 0; i < lemmaTags.size(); i++) {
+        Pair<String, String> lemmaTag = lemmaTags.get(i);
+        all[i] = new Candidate(lemmaTag.first, lemmaTag.second);
+        String key = upos(lemmaTag.second);
+        List<Candidate> group = grouped.get(key);
+        if (group == null) {
+          group = new ArrayList<Candidate>();
+          grouped.put(key, group);
+        }
+        group.add(all[i]);
+      }
+      upos = grouped.keySet().toArray(new String[0]);
+      byUpos = new Candidate[upos.length][];
+      for (int i = 0; i < upos.length; i++) {
+        byUpos[i] = grouped.get(upos[i]).toArray(new Candidate[0]);
+      }
+    }
+
+    private Candidate[] forUpos(String tagUpos) {
+      for (int i = 0; i < upos.length; i++) {
+        if (upos[i].equals(tagUpos)) {
+          return byUpos[i];
+        }
+      }
+      return null;
+    }
+  }
+
+  /** UPOS part of a tag, i.e. everything before the MF feature digits. */
+  private static String upos(String tag) {
+    if (tag == null) {
+      return "";
+    }
+    for (int i = 0; i < tag.length(); i++) {
+      if (Character.isDigit(tag.charAt(i))) {
+        return tag.substring(0, i);
+      }
+    }
+    return tag;
+  }
+
   private static void loadDictionary(String path) {
+    Map<String, List<Pair<String, String>>> dict = new HashMap<String, List<Pair<String, String>>>();
+    // one String per distinct lemma and tag instead of one per dictionary line
+    Map<String, String> strings = new HashMap<String, String>();
     List<String> lemmaLines = IOUtils.linesFromFile(path);
     for (String line : lemmaLines) {
       String[] ln = line.split("\t");
-      Pair<String, String> lemmaTag = new Pair<String, String>(ln[1], ln[2]);
+      Pair<String, String> lemmaTag = new Pair<String, String>(canonical(strings, ln[1]),
+          canonical(strings, ln[2]));
       if (dict.containsKey(ln[0])) {
         List<Pair<String, String>> dlist = dict.get(ln[0]);
         if (!dlist.contains(lemmaTag)) {
@@ -56,7 +135,31 @@ public class RussianLemmatizationAnnotator implements edu.stanford.nlp.pipeline.
         lst.add(lemmaTag);
         dict.put(ln[0], lst);
       }
-    } 
+    }
+    for (Map.Entry<String, List<Pair<String, String>>> entry : dict.entrySet()) {
+      String lemma = onlyLemma(entry.getValue());
+      if (lemma != null) {
+        lemmas.put(entry.getKey(), lemma);
+      } else {
+        ambiguous.put(entry.getKey(), new FormEntry(entry.getValue()));
+      }
+    }
+  }
+
+  /** The lemma shared by all {@code lemmaTags}, null if they differ. */
+  private static String onlyLemma(List<Pair<String, String>> lemmaTags) {
+    String lemma = lemmaTags.get(0).first;
+    for (Pair<String, String> lemmaTag : lemmaTags) {
+      if (!lemma.equals(lemmaTag.first)) {
+        return null;
+      }
+    }
+    return lemma;
+  }
+
+  private static String canonical(Map<String, String> strings, String value) {
+    String existing = strings.putIfAbsent(value, value);
+    return existing != null ? existing : value;
   }
 
   public RussianLemmatizationAnnotator() {
@@ -68,11 +171,14 @@ public class RussianLemmatizationAnnotator implements edu.stanford.nlp.pipeline.
   }
 
   public RussianLemmatizationAnnotator(String dictionaryPath, int numThreads) {
-    if (dict.isEmpty()) {
-      if (dictionaryPath == null) {
-        dictionaryPath = DEFAULT_DICTIONARY_PATH;
+    // models may be loaded on several threads at once, the dictionary is shared
+    synchronized (RussianLemmatizationAnnotator.class) {
+      if (lemmas.isEmpty() && ambiguous.isEmpty()) {
+        if (dictionaryPath == null) {
+          dictionaryPath = DEFAULT_DICTIONARY_PATH;
+        }
+        loadDictionary(dictionaryPath);
       }
-      loadDictionary(dictionaryPath);
     }
     this.nThreads = numThreads;
   }
@@ -122,31 +228,81 @@ public class RussianLemmatizationAnnotator implements edu.stanford.nlp.pipeline.
   }
 
   private CoreMap doOneSentence(CoreMap sentence) {
-    for (CoreLabel token : sentence.get(CoreAnnotations.TokensAnnotation.class)) {
+    List<CoreLabel> tokens = sentence.get(CoreAnnotations.TokensAnnotation.class);
+    for (CoreLabel token : tokens) {
       if (token.get(LemmaAnnotation.class) == null) {
-        token.setLemma(getLemma(token.originalText(), token.tag()));// getLemma(token.originalText()));
+        token.setLemma(getLemma(token));
       }
     }
 
     return sentence;
   }
 
-  private String getLemma(String token, String tag) {
-    String lemma = token; // FIXME
-    if (dict.containsKey(token)) {
-      List<Pair<String, String>> tokenList = dict.get(token);
-      if (tokenList.size() == 1) {
-        lemma = tokenList.get(0).first;
-      } else {
-        for (Pair<String, String> value : tokenList) {
-          if (value.second.equals(tag)) {
-            lemma = value.first;
-            break;
-          }
-        }
+  /**
+   * Picks the dictionary lemma for {@code token}. Candidates with the token's UPOS are scored by
+   * exact tag match and agreement with the morphological features; if the UPOS is not in the
+   * dictionary, a candidate is only taken when the features positively agree with it. Otherwise
+   * the surface form is kept and counted as a fallback.
+   */
+  private String getLemma(CoreLabel token) {
+    lookups.increment();
+    String form = token.originalText();
+    String lemma = lemmas.get(form);
+    if (lemma != null) {
+      return lemma;
+    }
+    FormEntry entry = ambiguous.get(form);
+    if (entry == null) {
+      unknownForms.increment();
+      return form;
+    }
+    // only ambiguous forms need the features, most tokens stop above
+    String tag = token.tag();
+    long feats = RussianMorphoAnnotator.featsBits(token.get(CoreAnnotations.CoNLLUFeats.class));
+    Candidate[] candidates = entry.forUpos(upos(tag));
+    Candidate best = candidates != null
+        ? bestCandidate(candidates, tag, feats, Integer.MIN_VALUE)
+        : bestCandidate(entry.all, tag, feats, 0);
+    if (best == null) {
+      fallbacks.increment();
+      return token.originalText();
+    }
+    return best.lemma;
+  }
+
+  private static Candidate bestCandidate(Candidate[] candidates, String tag, long feats,
+      int minScore) {
+    Candidate best = null;
+    int bestScore = minScore;
+    for (Candidate candidate : candidates) {
+      int score = RussianMorphoAnnotator.featsAgreement(feats, candidate.feats);
+      if (candidate.tag.equals(tag)) {
+        score += EXACT_TAG_SCORE;
+      }
+      if (score > bestScore) {
+        best = candidate;
+        bestScore = score;
       }
     }
-    return lemma;
+    return best;
+  }
+
+  public static long getLookupCount() {
+    return lookups.sum();
+  }
+
+  public static long getUnknownCount() {
+    return unknownForms.sum();
+  }
+
+  public static long getFallbackCount() {
+    return fallbacks.sum();
+  }
+
+  /** Share of dictionary forms that could not be disambiguated and kept their surface form. */
+  public static double getFallbackRate() {
+    long known = lookups.sum() - unknownForms.sum();
+    return known > 0 ? (double) fallbacks.sum() / known : 0.0;
   }
 
   @Override
@@ -47,8 +47,21 @@ public class RussianMorphoAnnotator implements Annotator {
 
   private static Map<String, List<String>> featsValMap = new HashMap<String, List<String>>();
 
+  /** Marks a bitset whose tag carried features, so an empty set differs from "no features". */
+  static final long FEATS_PRESENT = 1L << 63;
+
+  // per POS: position in tag -> value index -> ordinal
+  private static Map<String, int[][]> posOrdinals = new HashMap<String, int[][]>();
+
+  // feature -> value -> ordinal, and per feature the bits of all its values
+  private static Map<String, Map<String, Integer>> valueOrdinals =
+      new HashMap<String, Map<String, Integer>>();
+
+  private static long[] featureMasks;
+
   static {
     init();
+    initOrdinals();
   }
 
   private static void init() {
@@ -254,6 +267,41 @@ public class RussianMorphoAnnotator implements Annotator {
     });
   }
 
+  private static void initOrdinals() {
+    List<String> feats = new ArrayList<String>(featsValMap.keySet());
+    Collections.sort(feats);
+    List<String> ordFeats = new ArrayList<String>();
+    Map<String, Integer> firstOrdinal = new HashMap<String, Integer>();
+    featureMasks = new long[feats.size()];
+    for (int f = 0; f < feats.size(); f++) {
+      String feat = feats.get(f);
+      firstOrdinal.put(feat, ordFeats.size());
+      Map<String, Integer> values = new HashMap<String, Integer>();
+      for (String val : featsValMap.get(feat)) {
+        values.put(val, ordFeats.size());
+        featureMasks[f] |= 1L << ordFeats.size();
+        ordFeats.add(feat);
+      }
+      valueOrdinals.put(feat, values);
+    }
+    if (ordFeats.size() >= 63) {
+      throw new IllegalStateException("Too many feature values for a long bitset: " + ordFeats.size());
+    }
+
+    for (Map.Entry<String, List<String>> entry : featsMap.entrySet()) {
+      List<String> posFeats = entry.getValue();
+      int[][] ordinals = new int[posFeats.size()][];
+      for (int i = 0; i < posFeats.size(); i++) {
+        int size = featsValMap.get(posFeats.get(i)).size();
+        ordinals[i] = new int[size];
+        for (int j = 0; j < size; j++) {
+          ordinals[i][j] = firstOrdinal.get(posFeats.get(i)) + j;
+        }
+      }
+      posOrdinals.put(entry.getKey(), ordinals);
+    }
+  }
+
   public RussianMorphoAnnotator() {
     this(false);
   }
@@ -360,11 +408,7 @@ public class RussianMorphoAnnotator implements Annotator {
     if (tokens.size() <= maxSentenceLength) {
       try {
         for (CoreLabel token : tokens) {
-          tagged = pos.apply(new ArrayList<CoreLabel>() {
-            {
-              add(token);
-            }
-          });
+          tagged = pos.apply(Collections.singletonList(token));
 
           if (tagged != null) {
             setAnnotations(token, tagged.get(0).tag());
@@ -393,6 +437,56 @@ public class RussianMorphoAnnotator implements Annotator {
     }
   }
 
+  /**
+   * Same mapping as {@link #mappingFeats(String, String)}, packed into a bitset of
+   * (feature, value) ordinals with {@link #FEATS_PRESENT} set.
+   */
+  static long featsBits(String resPos, String feats) {
+    long bits = FEATS_PRESENT;
+    int[][] ordinals = posOrdinals.get(resPos);
+    if (ordinals != null && ordinals.length == feats.length()) {
+      for (int i = 0; i < ordinals.length; i++) {
+        int index = feats.charAt(i) - '1';
+        if (index >= 0 && index < ordinals[i].length) {
+          bits |= 1L << ordinals[i][index];
+        }
+      }
+    }
+    return bits;
+  }
+
+  /** Packs already mapped {@code CoNLLUFeats}; unknown features and values are ignored. */
+  static long featsBits(Map<String, String> feats) {
+    if (feats == null) {
+      return 0L;
+    }
+    long bits = FEATS_PRESENT;
+    for (Map.Entry<String, String> feat : feats.entrySet()) {
+      Map<String, Integer> values = valueOrdinals.get(feat.getKey());
+      Integer ordinal = values != null ? values.get(feat.getValue()) : null;
+      if (ordinal != null) {
+        bits |= 1L << ordinal;
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * Agreement of two feature bitsets: the number of features with equal values minus the number of
+   * features both specify with different values.
+   */
+  static int featsAgreement(long a, long b) {
+    int score = 0;
+    for (long mask : featureMasks) {
+      long fa = a & mask;
+      long fb = b & mask;
+      if (fa != 0 && fb != 0) {
+        score += (fa & fb) != 0 ? 1 : -1;
+      }
+    }
+    return score;
+  }
+
   HashMap<String, String> mappingFeats(String resPos, String feats) {
     HashMap<String, String> featsHM = new HashMap<String, String>();
 
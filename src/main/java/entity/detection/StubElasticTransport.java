@@ -0,0 +1,85 @@
+package entity.detection;
+
+import com.typesafe.config.Config;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for an Elasticsearch cluster, plugged into
+ * {@link ElasticConfigurator#initialize(Config, ElasticConfigurator.Transport)} by load tests.
+ *
+ * <p>Every request is answered after {@code latency}. Configurable shares of requests never answer
+ * (so they hit {@code es.request-timeout}), fail with 503, or are rejected with 400, which drives
+ * the configurator's breaker, spool and dead-letter paths the way a struggling cluster would.
+ * Index responses carry no body; searches return no hits.
+ */
+public class StubElasticTransport implements ElasticConfigurator.Transport {
+    private final long latencyMillis;
+    private final double timeoutRate;
+    private final double unavailableRate;
+    private final double rejectRate;
+    private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "es-stub-responder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param conf the {@code loadtest.stub} config section
+     */
+    public StubElasticTransport(Config conf) {
+        this.latencyMillis = conf.getDuration("latency", TimeUnit.MILLISECONDS);
+        this.timeoutRate = conf.getDouble("timeout-rate");
+        this.unavailableRate = conf.getDouble("unavailable-rate");
+        this.rejectRate = conf.getDouble("reject-rate");
+    }
+
+    @Override
+    public ActionFuture<IndexResponse> index(IndexRequest request) {
+        return respond(null);
+    }
+
+    @Override
+    public ActionFuture<SearchResponse> search(SearchRequest request) {
+        return respond(new SearchResponse(InternalSearchResponse.empty(), null, 1, 1, 0, latencyMillis,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY));
+    }
+
+    private <T> ActionFuture<T> respond(T response) {
+        PlainActionFuture<T> future = PlainActionFuture.newFuture();
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < timeoutRate) {
+            return future;
+        }
+        roll -= timeoutRate;
+        Runnable answer;
+        if (roll < unavailableRate) {
+            answer = () -> future.onFailure(
+                    new ElasticsearchStatusException("stub cluster unavailable", RestStatus.SERVICE_UNAVAILABLE));
+        } else if (roll - unavailableRate < rejectRate) {
+            answer = () -> future.onFailure(
+                    new ElasticsearchStatusException("stub cluster rejected the request", RestStatus.BAD_REQUEST));
+        } else {
+            answer = () -> future.onResponse(response);
+        }
+        if (latencyMillis > 0) {
+            responder.schedule(answer, latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            answer.run();
+        }
+        return future;
+    }
+}
@@ -0,0 +1,111 @@
+package entity.detection;
+
+import java.util.Random;
+
+/**
+ * Deterministic generator of Russian news-like documents for load tests.
+ *
+ * <p>Sentences are built from templates over small pools of people, organizations, places and
+ * inflected nouns, verbs and adjectives, so the taggers, the parser and the lemmatizer see the
+ * same kind of ambiguity and named entities as real news. The same seed gives the same stream.
+ */
+public class SyntheticNewsGenerator {
+    private final static String[] PERSONS = {
+            "Владимир Путин", "Сергей Лавров", "Михаил Мишустин", "Эльвира Набиуллина",
+            "Сергей Собянин", "Алексей Миллер", "Герман Греф", "Мария Захарова",
+            "Антон Силуанов", "Дмитрий Песков", "Анна Петрова", "Иван Смирнов"
+    };
+    private final static String[] PERSONS_GEN = {
+            "Владимира Путина", "Сергея Лаврова", "Михаила Мишустина", "Эльвиры Набиуллиной",
+            "Сергея Собянина", "Алексея Миллера", "Германа Грефа", "Марии Захаровой",
+            "Антона Силуанова", "Дмитрия Пескова", "Анны Петровой", "Ивана Смирнова"
+    };
+    private final static String[] ORGS = {
+            "Газпром", "Сбербанк", "Роснефть", "Центробанк", "Министерство финансов",
+            "Госдума", "Правительство", "Аэрофлот", "РЖД", "Росстат"
+    };
+    private final static String[] PLACES = {
+            "в Москве", "в Санкт-Петербурге", "в Новосибирске", "в Казани", "на Урале",
+            "в Екатеринбурге", "в Сочи", "на Дальнем Востоке", "в Калининграде", "в Крыму"
+    };
+    private final static String[] VERBS = {
+            "заявил", "сообщил", "объявил", "подчеркнул", "отметил", "предложил", "опроверг"
+    };
+    private final static String[] EVENTS = {
+            "рост цен", "новые санкции", "снижение ставки", "строительство моста",
+            "реформу образования", "запуск производства", "дефицит бюджета", "итоги года"
+    };
+    private final static String[] ADJECTIVES = {
+            "новый", "крупный", "важный", "федеральный", "региональный", "масштабный", "долгожданный"
+    };
+    private final static String[] NOUNS = {
+            "проект", "закон", "контракт", "план", "доклад", "прогноз", "договор", "бюджет"
+    };
+    private final static String[] TIMES = {
+            "в понедельник", "во вторник", "в среду", "в четверг", "в пятницу",
+            "на прошлой неделе", "накануне", "сегодня утром"
+    };
+    private final static String[] AUTHORS = {
+            "Ольга Иванова", "Павел Кузнецов", "Екатерина Соколова", "Николай Попов", "Редакция"
+    };
+
+    private final Random random;
+    private long counter;
+
+    public SyntheticNewsGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public synchronized ElasticConfigurator.OneNews next(int minSentences, int maxSentences) {
+        ElasticConfigurator.OneNews news = new ElasticConfigurator.OneNews();
+        news.setHeader(header());
+        news.setAuthor(pick(AUTHORS));
+        int sentences = minSentences + random.nextInt(Math.max(1, maxSentences - minSentences + 1));
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(sentence());
+        }
+        news.setText(text.toString());
+        news.setURI("https://news.example/" + counter++);
+        return news;
+    }
+
+    public synchronized String header() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return pick(PERSONS) + " " + pick(VERBS) + " " + pick(EVENTS);
+            case 1:
+                return pick(ORGS) + " " + pick(VERBS) + " " + pick(ADJECTIVES) + " " + pick(NOUNS);
+            default:
+                return capitalize(pick(PLACES)) + " обсудили " + pick(EVENTS);
+        }
+    }
+
+    private String sentence() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return pick(PERSONS) + " " + pick(TIMES) + " " + pick(VERBS) + ", что "
+                        + pick(ORGS) + " поддерживает " + pick(ADJECTIVES) + " " + pick(NOUNS) + ".";
+            case 1:
+                return capitalize(pick(TIMES)) + " " + pick(PLACES) + " представили "
+                        + pick(ADJECTIVES) + " " + pick(NOUNS) + " при участии " + pick(PERSONS_GEN) + ".";
+            case 2:
+                return "По словам " + pick(PERSONS_GEN) + ", " + pick(ORGS) + " рассчитывает на "
+                        + pick(EVENTS) + " " + pick(PLACES) + ".";
+            default:
+                return capitalize(pick(ORGS)) + " " + pick(VERBS) + " " + pick(EVENTS) + ", "
+                        + (1 + random.nextInt(99)) + " процентов опрошенных согласны с этим.";
+        }
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String capitalize(String value) {
+        return Character.toUpperCase(value.charAt(0)) + value.substring(1);
+    }
+}
@@ -14,9 +14,17 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class entityDetection {
@@ -30,34 +38,142 @@ public class entityDetection {
     //private final static String DEFAULT_PATH_TEXT = "ru_example.txt";
     private final static boolean MF = true;
 
-    public static StanfordCoreNLP buildPipeline() {
-        String tagger = DEFAULT_PATH_TAGGER;
-        String taggerMF = DEFAULT_PATH_MF_TAGGER;
-        String parser = DEFAULT_PATH_PARSER_MODEL;
-        String pLemmaDict = DEFAULT_LEMMA_DICT;
+    private static CompletableFuture<List<Annotator>> sharedStages;
 
-        boolean mf = MF;
+    public static StanfordCoreNLP buildPipeline() {
+        return buildPipeline(buildTaggingStages());
+    }
 
+    public static StanfordCoreNLP buildPipeline(List<Annotator> stages) {
+        StanfordCoreNLP pipeline = buildTokenizer();
+        for (Annotator annotator : stages) {
+            pipeline.addAnnotator(annotator);
+        }
+        return pipeline;
+    }
 
+    /**
+     * Pipeline with only tokenize and ssplit, the per-document part of {@link #buildPipeline()}.
+     */
+    public static StanfordCoreNLP buildTokenizer() {
         Properties props = new Properties();
         props.setProperty("annotators", "tokenize, ssplit");
-        StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+        return new StanfordCoreNLP(props);
+    }
 
-        if (mf) {
-            pipeline.addAnnotator(new RussianMorphoAnnotator(new MaxentTagger(taggerMF)));
+    /**
+     * Sentence-level stages (morpho, POS, dependency parse, lemma) in pipeline order. They only
+     * look at sentences, so they can be run over sentences pooled from several documents.
+     */
+    public static List<Annotator> buildTaggingStages() {
+        return assembleStages(MF ? loadMfTagger() : null, loadPosTagger(), loadParser(), loadLemmatizer());
+    }
+
+    /**
+     * Stages of {@link #buildTaggingStages()} loaded once per JVM, with every model read on its own
+     * thread. The future completes when all models are in memory and can be used as a readiness
+     * signal; callers in the same process share the loaded annotators.
+     */
+    public static synchronized CompletableFuture<List<Annotator>> sharedTaggingStages() {
+        if (sharedStages == null || sharedStages.isCompletedExceptionally()) {
+            sharedStages = loadTaggingStagesAsync();
         }
-        pipeline.addAnnotator(new POSTaggerAnnotator(new MaxentTagger(tagger)));
+        return sharedStages;
+    }
+
+    private static CompletableFuture<List<Annotator>> loadTaggingStagesAsync() {
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService loaders = Executors.newFixedThreadPool(4, task -> {
+            Thread thread = new Thread(task, "model-loader-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+
+        CompletableFuture<MaxentTagger> mfTagger = MF
+                ? CompletableFuture.supplyAsync(entityDetection::loadMfTagger, loaders)
+                : CompletableFuture.completedFuture(null);
+        CompletableFuture<MaxentTagger> posTagger =
+                CompletableFuture.supplyAsync(entityDetection::loadPosTagger, loaders);
+        CompletableFuture<DependencyParseAnnotator> parser =
+                CompletableFuture.supplyAsync(entityDetection::loadParser, loaders);
+        CompletableFuture<RussianLemmatizationAnnotator> lemmatizer =
+                CompletableFuture.supplyAsync(entityDetection::loadLemmatizer, loaders);
+
+        CompletableFuture<List<Annotator>> stages = CompletableFuture.allOf(mfTagger, posTagger, parser, lemmatizer)
+                .thenApply(done -> assembleStages(mfTagger.join(), posTagger.join(), parser.join(), lemmatizer.join()));
+        stages.whenComplete((loaded, error) -> {
+            loaders.shutdown();
+            if (error == null) {
+                log.info("Models loaded in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } else {
+                log.error("Failed to load models", error);
+            }
+        });
+        return stages;
+    }
 
+    private static MaxentTagger loadMfTagger() {
+        return new MaxentTagger(DEFAULT_PATH_MF_TAGGER);
+    }
+
+    private static MaxentTagger loadPosTagger() {
+        return new MaxentTagger(DEFAULT_PATH_TAGGER);
+    }
+
+    private static DependencyParseAnnotator loadParser() {
         Properties propsParser = new Properties();
-        propsParser.setProperty("model", parser);
-        propsParser.setProperty("tagger.model", tagger);
-        pipeline.addAnnotator(new DependencyParseAnnotator(propsParser));
+        propsParser.setProperty("model", DEFAULT_PATH_PARSER_MODEL);
+        propsParser.setProperty("tagger.model", DEFAULT_PATH_TAGGER);
+        return new DependencyParseAnnotator(propsParser);
+    }
 
+    private static RussianLemmatizationAnnotator loadLemmatizer() {
+        String pLemmaDict = DEFAULT_LEMMA_DICT;
         if (pLemmaDict.isEmpty()) {
-            pipeline.addAnnotator(new RussianLemmatizationAnnotator());
-        } else {
-            pipeline.addAnnotator(new RussianLemmatizationAnnotator(pLemmaDict));
+            return new RussianLemmatizationAnnotator();
         }
-        return pipeline;
+        return new RussianLemmatizationAnnotator(pLemmaDict);
+    }
+
+    private static List<Annotator> assembleStages(MaxentTagger mfTagger, MaxentTagger posTagger,
+                                                  DependencyParseAnnotator parser,
+                                                  RussianLemmatizationAnnotator lemmatizer) {
+        List<Annotator> stages = new ArrayList<>();
+        if (mfTagger != null) {
+            stages.add(new RussianMorphoAnnotator(mfTagger, Integer.MAX_VALUE, 1));
+        }
+        stages.add(new POSTaggerAnnotator(posTagger));
+        stages.add(parser);
+        stages.add(lemmatizer);
+        return stages;
+    }
+
+    /**
+     * Named entities of an annotated document: runs of consecutive PROPN tokens, joined by their
+     * lemmas, without duplicates. These are what {@link ElasticConfigurator#ENTITY_FIELD} aggregates.
+     */
+    public static List<String> extractEntities(CoreDocument document) {
+        Set<String> entities = new LinkedHashSet<>();
+        List<CoreLabel> tokens = document.annotation().get(CoreAnnotations.TokensAnnotation.class);
+        if (tokens == null) {
+            return new ArrayList<>();
+        }
+        StringBuilder entity = new StringBuilder();
+        for (CoreLabel token : tokens) {
+            if ("PROPN".equals(token.tag())) {
+                if (entity.length() > 0) {
+                    entity.append(' ');
+                }
+                entity.append(token.lemma() != null ? token.lemma() : token.word());
+            } else if (entity.length() > 0) {
+                entities.add(entity.toString());
+                entity.setLength(0);
+            }
+        }
+        if (entity.length() > 0) {
+            entities.add(entity.toString());
+        }
+        return new ArrayList<>(entities);
     }
 }
\ No newline at end of file